@@ -18,7 +18,9 @@ import cc.hev.socks5.tunnel.HevSocks5Tunnel;
 import cc.hev.socks5.tunnel.TunnelConfig;
 import cc.hev.socks5.tunnel.TunnelException;
 import cc.hev.socks5.tunnel.TunnelStats;
+import cc.hev.socks5.tunnel.TunnelSupervisor;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.lang.reflect.Field;
 
@@ -32,6 +34,7 @@ public class ExampleVpnService extends VpnService {
     
     private final IBinder binder = new LocalBinder();
     private HevSocks5Tunnel tunnel;
+    private TunnelSupervisor supervisor;
     private ParcelFileDescriptor tunInterface;
     private volatile boolean running = false;
     
@@ -45,6 +48,8 @@ public class ExampleVpnService extends VpnService {
     public void onCreate() {
         super.onCreate();
         Log.i(TAG, "Service created");
+        // Load the native library while the VPN interface is being set up
+        HevSocks5Tunnel.preloadAsync();
         createNotificationChannel();
     }
     
@@ -124,6 +129,9 @@ public class ExampleVpnService extends VpnService {
                 .addRoute("0.0.0.0", 0)
                 .addDnsServer("8.8.8.8")
                 .setMtu(8500);
+            // Keep this app's own traffic, including resolving the SOCKS5
+            // host, out of the tunnel it serves
+            builder.addDisallowedApplication(getPackageName());
             
             tunInterface = builder.establish();
             if (tunInterface == null) {
@@ -143,11 +151,25 @@ public class ExampleVpnService extends VpnService {
                 .setSocks5Address("127.0.0.1")  // Replace with your SOCKS5 server
                 .setSocks5Port(1080)             // Replace with your SOCKS5 port
                 .setTunMtu(8500)
+                .setWarmStateFile(new File(getNoBackupFilesDir(), "tunnel/warm-state"))
                 .build();
             
-            // Create and start tunnel
+            // Create and start tunnel, restarting it if the upstream drops
             tunnel = new HevSocks5Tunnel();
-            tunnel.startAsync(config, tunFd);
+            supervisor = new TunnelSupervisor(tunnel, config, tunFd);
+            supervisor.setSocketProtector(this::protect);
+            supervisor.setListener(new TunnelSupervisor.Listener() {
+                @Override
+                public void onUpstreamLost(String reason) {
+                    Log.w(TAG, "Upstream lost: " + reason);
+                }
+                
+                @Override
+                public void onReconnected(long downtimeMs, int attempts) {
+                    Log.i(TAG, "Upstream recovered after " + downtimeMs + "ms");
+                }
+            });
+            supervisor.start();
             
             running = true;
             Log.i(TAG, "Tunnel started successfully");
@@ -170,14 +192,15 @@ public class ExampleVpnService extends VpnService {
         Log.i(TAG, "Stopping tunnel");
         running = false;
         
-        if (tunnel != null) {
+        if (supervisor != null) {
             try {
-                tunnel.stop();
+                supervisor.stop();
             } catch (Exception e) {
                 Log.e(TAG, "Error stopping tunnel", e);
             }
-            tunnel = null;
+            supervisor = null;
         }
+        tunnel = null;
         
         cleanup();
         Log.i(TAG, "Tunnel stopped");
@@ -198,7 +221,7 @@ public class ExampleVpnService extends VpnService {
     }
     
     public boolean isRunning() {
-        return running && tunnel != null && tunnel.isRunning();
+        return running && supervisor != null && supervisor.isRunning();
     }
     
     public TunnelStats getStats() {
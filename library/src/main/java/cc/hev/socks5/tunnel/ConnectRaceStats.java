@@ -0,0 +1,72 @@
+package cc.hev.socks5.tunnel;
+
+/**
+ * Metrics for dual-stack upstream connect races.
+ */
+public class ConnectRaceStats {
+    private final long races;
+    private final long ipv6Wins;
+    private final long ipv4Wins;
+    private final long failures;
+    private final long cacheHits;
+    private final long dnsCacheHits;
+    private final long lastConnectMs;
+    
+    public ConnectRaceStats(long races, long ipv6Wins, long ipv4Wins, long failures,
+                            long cacheHits, long dnsCacheHits, long lastConnectMs) {
+        this.races = races;
+        this.ipv6Wins = ipv6Wins;
+        this.ipv4Wins = ipv4Wins;
+        this.failures = failures;
+        this.cacheHits = cacheHits;
+        this.dnsCacheHits = dnsCacheHits;
+        this.lastConnectMs = lastConnectMs;
+    }
+    
+    public long getRaces() {
+        return races;
+    }
+    
+    public long getIpv6Wins() {
+        return ipv6Wins;
+    }
+    
+    public long getIpv4Wins() {
+        return ipv4Wins;
+    }
+    
+    /**
+     * Races in which no address could be connected.
+     */
+    public long getFailures() {
+        return failures;
+    }
+    
+    /**
+     * Races that started with a cached winning family.
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+    
+    /**
+     * Connects that used a remembered DNS answer instead of resolving.
+     */
+    public long getDnsCacheHits() {
+        return dnsCacheHits;
+    }
+    
+    /**
+     * Time from resolution start to the winning connect, -1 if none yet.
+     */
+    public long getLastConnectMs() {
+        return lastConnectMs;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("ConnectRaceStats{races=%d, v6=%d, v4=%d, failed=%d, cached=%d, "
+                        + "dnsCached=%d, last=%dms}",
+                races, ipv6Wins, ipv4Wins, failures, cacheHits, dnsCacheHits, lastConnectMs);
+    }
+}
@@ -0,0 +1,433 @@
+package cc.hev.socks5.tunnel;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * RFC 8305 style connection racing to the SOCKS5 upstream.
+ *
+ * <p>Resolved addresses are interleaved by family, starting with the family
+ * that last won for this host (IPv6 if unknown). A new attempt starts every
+ * connection attempt delay, or immediately when all attempts in flight have
+ * failed; the first connected socket wins and the rest are closed. Once a
+ * connect time to the host is known, the delay shrinks to twice that
+ * estimate (RFC 8305 section 5), bounded by 10 ms and the configured
+ * delay, so a dead first address costs about one connect time. The
+ * winning family is cached per host for {@link #CACHE_TTL_MS}, and DNS
+ * answers and connect times are remembered so they can be persisted in a
+ * {@link WarmStateCache}.
+ */
+final class HappyEyeballs {
+    static final long CACHE_TTL_MS = 10 * 60 * 1000;
+    
+    /**
+     * The platform resolver does not expose record TTLs, so answers are
+     * kept for a fixed time and dropped early if none of them connects.
+     */
+    static final long DNS_TTL_MS = 5 * 60 * 1000;
+    
+    private static final long MIN_ATTEMPT_DELAY_MS = 10;
+    
+    private final Map<String, CachedFamily> winners = new HashMap<>();
+    private final Map<String, DnsAnswer> answers = new HashMap<>();
+    private final Map<String, Long> latencies = new HashMap<>();
+    private WarmStateCache warmState;
+    private long dnsCacheHits;
+    private long races;
+    private long ipv6Wins;
+    private long ipv4Wins;
+    private long failures;
+    private long cacheHits;
+    private long lastConnectMs = -1;
+    
+    private static final class CachedFamily {
+        final boolean ipv6;
+        final long expiresAt;
+        
+        CachedFamily(boolean ipv6, long expiresAt) {
+            this.ipv6 = ipv6;
+            this.expiresAt = expiresAt;
+        }
+    }
+    
+    private static final class DnsAnswer {
+        final InetAddress[] addresses;
+        final long expiresAt;
+        
+        DnsAnswer(InetAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+    
+    /**
+     * Connect to {@code host:port}, racing address families if enabled.
+     * A remembered DNS answer is tried first with half of
+     * {@code timeoutMs}; if no address in it connects, the host is resolved
+     * again and connected with what is left. Resolution counts against the
+     * same budget. A literal address is connected to as is.
+     *
+     * @return The connected socket
+     */
+    Socket connect(String host, int port, TunnelConfig config,
+                   @Nullable SocketProtector protector, int timeoutMs) throws IOException {
+        if (isLiteralAddress(host)) {
+            // Nothing to resolve or race, and nothing worth remembering
+            return connectOne(InetAddress.getByName(host), port, protector, timeoutMs);
+        }
+        
+        int budgetMs = timeoutMs;
+        InetAddress[] cached = cachedAnswer(host);
+        if (cached != null) {
+            long start = System.nanoTime();
+            try {
+                return connect(host, cached, port, config, protector,
+                        Math.max(1, timeoutMs / 2), false);
+            } catch (IOException e) {
+                forgetAnswer(host);
+            }
+            budgetMs = (int) Math.max(1, timeoutMs - (System.nanoTime() - start) / 1_000_000);
+        }
+        
+        long start = System.nanoTime();
+        InetAddress[] resolved = resolve(host, budgetMs);
+        rememberAnswer(host, resolved);
+        budgetMs -= (int) ((System.nanoTime() - start) / 1_000_000);
+        if (budgetMs <= 0) {
+            throw new SocketTimeoutException("Connect to " + host + " timed out");
+        }
+        return connect(host, resolved, port, config, protector, budgetMs, true);
+    }
+    
+    /**
+     * Resolve {@code host} within {@code timeoutMs}. The lookup runs on its
+     * own thread because the platform resolver has no timeout of its own,
+     * and a query routed into a tunnel nobody is serving yet would
+     * otherwise block until the resolver gives up.
+     */
+    private static InetAddress[] resolve(final String host, int timeoutMs) throws IOException {
+        FutureTask<InetAddress[]> lookup = new FutureTask<>(() -> InetAddress.getAllByName(host));
+        Thread resolver = new Thread(lookup, "HevSocks5TunnelResolve");
+        resolver.setDaemon(true);
+        resolver.start();
+        try {
+            return lookup.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            lookup.cancel(true);
+            throw new SocketTimeoutException("Resolving " + host + " timed out");
+        } catch (InterruptedException e) {
+            lookup.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while resolving " + host);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to resolve " + host, cause);
+        }
+    }
+    
+    static boolean isLiteralAddress(String host) {
+        return host.indexOf(':') >= 0 || host.matches("\\d{1,3}(\\.\\d{1,3}){3}");
+    }
+    
+    /**
+     * @param lastAttempt Whether a failure is final and counts in the stats
+     */
+    private Socket connect(String host, InetAddress[] resolved, int port, TunnelConfig config,
+                           @Nullable SocketProtector protector, int timeoutMs,
+                           boolean lastAttempt) throws IOException {
+        long start = System.nanoTime();
+        if (!config.isHappyEyeballsEnabled() || resolved.length == 1) {
+            Socket socket = connectOne(resolved[0], port, protector, timeoutMs);
+            recordLatency(host, (System.nanoTime() - start) / 1_000_000);
+            return socket;
+        }
+        
+        Boolean preferIpv6 = cachedFamily(host);
+        List<InetAddress> ordered = interleave(resolved, preferIpv6 == null || preferIpv6);
+        Race race = new Race();
+        List<Socket> sockets = new ArrayList<>();
+        long deadline = start + timeoutMs * 1_000_000L;
+        long attemptDelayMs = attemptDelayMs(host, config);
+        
+        try {
+            for (int i = 0; i < ordered.size(); i++) {
+                synchronized (race) {
+                    if (race.winner != null || System.nanoTime() >= deadline) {
+                        break;
+                    }
+                }
+                Socket socket = newSocket(protector);
+                sockets.add(socket);
+                race.start(socket, new InetSocketAddress(ordered.get(i), port),
+                        remainingMs(deadline));
+                if (i + 1 < ordered.size()) {
+                    race.await(Math.min(deadline,
+                            System.nanoTime() + attemptDelayMs * 1_000_000L));
+                }
+            }
+            race.await(deadline);
+        } finally {
+            synchronized (race) {
+                race.done = true;
+                for (Socket s : sockets) {
+                    if (s != race.winner) {
+                        try {
+                            s.close();
+                        } catch (IOException e) {
+                            // Ignore
+                        }
+                    }
+                }
+            }
+        }
+        
+        Socket winner;
+        IOException error;
+        synchronized (race) {
+            winner = race.winner;
+            error = race.error;
+        }
+        record(host, winner, preferIpv6 != null, lastAttempt, start);
+        if (winner == null) {
+            throw error != null ? error : new IOException("Connect to " + host + " timed out");
+        }
+        return winner;
+    }
+    
+    synchronized ConnectRaceStats getStats() {
+        return new ConnectRaceStats(races, ipv6Wins, ipv4Wins, failures, cacheHits, dnsCacheHits,
+                lastConnectMs);
+    }
+    
+    private synchronized Boolean cachedFamily(String host) {
+        CachedFamily cached = winners.get(host);
+        if (cached == null || cached.expiresAt < System.currentTimeMillis()) {
+            return null;
+        }
+        return cached.ipv6;
+    }
+    
+    private synchronized void record(String host, @Nullable Socket winner, boolean cacheHit,
+                                     boolean lastAttempt, long start) {
+        if (winner == null) {
+            winners.remove(host);
+            if (!lastAttempt) {
+                // The retry with a fresh DNS answer counts as this race
+                return;
+            }
+        }
+        races++;
+        if (cacheHit) {
+            cacheHits++;
+        }
+        if (winner == null) {
+            failures++;
+            return;
+        }
+        boolean ipv6 = winner.getInetAddress() instanceof Inet6Address;
+        if (ipv6) {
+            ipv6Wins++;
+        } else {
+            ipv4Wins++;
+        }
+        long expiresAt = System.currentTimeMillis() + CACHE_TTL_MS;
+        winners.put(host, new CachedFamily(ipv6, expiresAt));
+        if (warmState != null) {
+            warmState.putRoute(host, ipv6, expiresAt);
+        }
+        recordLatency(host, (System.nanoTime() - start) / 1_000_000);
+    }
+    
+    private synchronized void recordLatency(String host, long ms) {
+        lastConnectMs = ms;
+        Long previous = latencies.get(host);
+        long estimate = previous == null ? ms : (previous * 7 + ms) / 8;
+        latencies.put(host, estimate);
+        if (warmState != null) {
+            warmState.putLatency(host, estimate);
+        }
+    }
+    
+    /**
+     * Smoothed connect time to {@code host}, -1 if never connected.
+     */
+    synchronized long getLatencyEstimateMs(String host) {
+        Long estimate = latencies.get(host);
+        return estimate != null ? estimate : -1;
+    }
+    
+    private long attemptDelayMs(String host, TunnelConfig config) {
+        long configured = config.getConnectionAttemptDelayMs();
+        long estimate = getLatencyEstimateMs(host);
+        if (estimate < 0) {
+            return configured;
+        }
+        return Math.max(MIN_ATTEMPT_DELAY_MS, Math.min(configured, estimate * 2));
+    }
+    
+    private synchronized InetAddress[] cachedAnswer(String host) {
+        DnsAnswer answer = answers.get(host);
+        if (answer == null || answer.expiresAt < System.currentTimeMillis()) {
+            return null;
+        }
+        dnsCacheHits++;
+        return answer.addresses;
+    }
+    
+    private synchronized void rememberAnswer(String host, InetAddress[] addresses) {
+        long expiresAt = System.currentTimeMillis() + DNS_TTL_MS;
+        answers.put(host, new DnsAnswer(addresses, expiresAt));
+        if (warmState != null) {
+            warmState.putDns(host, addresses, expiresAt);
+        }
+    }
+    
+    private synchronized void forgetAnswer(String host) {
+        answers.remove(host);
+        if (warmState != null) {
+            warmState.putDns(host, new InetAddress[0], 0);
+        }
+    }
+    
+    /**
+     * Persist what is learned from now on to {@code state}.
+     */
+    synchronized void setWarmState(@Nullable WarmStateCache state) {
+        this.warmState = state;
+    }
+    
+    synchronized void restoreRoute(String host, boolean ipv6, long expiresAt) {
+        winners.put(host, new CachedFamily(ipv6, expiresAt));
+    }
+    
+    synchronized void restoreDns(String host, InetAddress[] addresses, long expiresAt) {
+        answers.put(host, new DnsAnswer(addresses, expiresAt));
+    }
+    
+    synchronized void restoreLatency(String host, long estimateMs) {
+        latencies.put(host, estimateMs);
+    }
+    
+    private static List<InetAddress> interleave(InetAddress[] addresses, boolean ipv6First) {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        for (InetAddress a : addresses) {
+            if ((a instanceof Inet6Address) == ipv6First) {
+                first.add(a);
+            } else {
+                second.add(a);
+            }
+        }
+        List<InetAddress> ordered = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                ordered.add(first.get(i));
+            }
+            if (i < second.size()) {
+                ordered.add(second.get(i));
+            }
+        }
+        return ordered;
+    }
+    
+    private static Socket connectOne(InetAddress address, int port,
+                                     @Nullable SocketProtector protector, int timeoutMs)
+            throws IOException {
+        Socket socket = newSocket(protector);
+        try {
+            socket.connect(new InetSocketAddress(address, port), timeoutMs);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+    
+    private static Socket newSocket(@Nullable SocketProtector protector) throws IOException {
+        Socket socket = new Socket();
+        if (protector != null && !protector.protect(socket)) {
+            socket.close();
+            throw new IOException("Failed to protect upstream socket");
+        }
+        return socket;
+    }
+    
+    private static int remainingMs(long deadline) {
+        return (int) Math.max(1, (deadline - System.nanoTime()) / 1_000_000);
+    }
+    
+    /**
+     * Shared state of one race; attempt threads report into it.
+     */
+    private static final class Race {
+        Socket winner;
+        IOException error;
+        int started;
+        int failed;
+        boolean done;
+        
+        void start(final Socket socket, final InetSocketAddress address, final int timeoutMs) {
+            synchronized (this) {
+                started++;
+            }
+            Thread attempt = new Thread(() -> {
+                try {
+                    socket.connect(address, timeoutMs);
+                    synchronized (Race.this) {
+                        if (winner == null && !done) {
+                            winner = socket;
+                            Race.this.notifyAll();
+                            return;
+                        }
+                    }
+                    socket.close();
+                } catch (IOException e) {
+                    synchronized (Race.this) {
+                        failed++;
+                        error = e;
+                        Race.this.notifyAll();
+                    }
+                }
+            }, "HevSocks5TunnelConnect");
+            attempt.setDaemon(true);
+            attempt.start();
+        }
+        
+        /**
+         * Wait until a winner is known, every attempt so far has failed,
+         * or {@code until} (nanoTime) passes.
+         */
+        synchronized void await(long until) {
+            while (winner == null && failed < started) {
+                long left = (until - System.nanoTime()) / 1_000_000;
+                if (left <= 0) {
+                    return;
+                }
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
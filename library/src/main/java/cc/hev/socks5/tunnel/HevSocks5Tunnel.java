@@ -1,18 +1,23 @@
 package cc.hev.socks5.tunnel;
 
 import android.util.Log;
+
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class HevSocks5Tunnel {
     private static final String TAG = "HevSocks5Tunnel";
     private static final String LIBRARY_NAME = "hev-socks5-tunnel-jni";
-    private static boolean libraryLoaded = false;
-    private static Throwable libraryLoadError = null;
-    
-    private volatile boolean running = false;
-    private Thread tunnelThread = null;
-    
-    static {
+    private static volatile boolean libraryLoaded = false;
+    private static volatile Throwable libraryLoadError = null;
+    private static final AtomicBoolean libraryLoadStarted = new AtomicBoolean(false);
+    private static final FutureTask<Boolean> libraryLoader = new FutureTask<>(() -> {
         try {
             System.loadLibrary(LIBRARY_NAME);
             libraryLoaded = true;
@@ -22,20 +27,90 @@ public class HevSocks5Tunnel {
             libraryLoadError = e;
             Log.e(TAG, "Failed to load native library: " + LIBRARY_NAME, e);
         }
+        return libraryLoaded;
+    });
+    
+    /**
+     * Notified on the tunnel thread when the native tunnel returns.
+     */
+    interface ExitListener {
+        void onTunnelExit(int result);
     }
     
+    private volatile boolean running = false;
+    private volatile ExitListener exitListener = null;
+    private Thread tunnelThread = null;
+    private final Object coreLock = new Object();
+    private boolean cancelled = false;
+    private volatile String upstreamAddress = null;
+    private volatile long coreStartNanos = -1;
+    private final Object timingsLock = new Object();
+    private volatile StartupTimings startupTimings = null;
+    private volatile SocketProtector socketProtector = null;
+    private final HappyEyeballs happyEyeballs = new HappyEyeballs();
+    private volatile WarmStateCache warmState = null;
+    private volatile long startNanos;
+    private long libraryWaitMs;
+    
+    /**
+     * Start loading the native library on a background thread. Call early
+     * (e.g. from {@code Application.onCreate}) so the first tunnel start
+     * does not pay for it. Safe to call repeatedly.
+     *
+     * @return Future completing with {@code true} once the library is loaded
+     */
+    public static Future<Boolean> preloadAsync() {
+        if (libraryLoadStarted.compareAndSet(false, true)) {
+            Thread loader = new Thread(libraryLoader, "HevSocks5TunnelLoader");
+            loader.setDaemon(true);
+            loader.start();
+        }
+        return libraryLoader;
+    }
+    
+    private static boolean awaitLibrary() {
+        if (libraryLoadStarted.compareAndSet(false, true)) {
+            // Nobody preloaded: load on the calling thread
+            libraryLoader.run();
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return libraryLoader.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            libraryLoadError = e.getCause();
+            return false;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Check whether the native library is loaded, waiting for an ongoing
+     * load (or loading it) if necessary.
+     */
     public static boolean isLibraryLoaded() {
-        return libraryLoaded;
+        return awaitLibrary();
     }
     
     public static Throwable getLibraryLoadError() {
+        awaitLibrary();
         return libraryLoadError;
     }
     
     public HevSocks5Tunnel() {
-        if (!libraryLoaded) {
+        long start = System.nanoTime();
+        if (!awaitLibrary()) {
             throw new RuntimeException("Native library not loaded", libraryLoadError);
         }
+        libraryWaitMs = (System.nanoTime() - start) / 1_000_000;
     }
     
     public void startAsync(String configPath, FileDescriptor tunFd) throws TunnelException {
@@ -59,11 +134,15 @@ public class HevSocks5Tunnel {
         running = true;
         final String finalConfigPath = configPath;
         final int finalFd = fd;
+        synchronized (coreLock) {
+            cancelled = false;
+        }
         
         tunnelThread = new Thread(() -> {
+            int result = -1;
             try {
                 Log.i(TAG, "Starting tunnel thread with config: " + finalConfigPath);
-                int result = nativeStart(finalConfigPath, finalFd);
+                result = nativeStart(finalConfigPath, finalFd);
                 if (result != 0) {
                     Log.e(TAG, "Tunnel failed with error code: " + result);
                 } else {
@@ -73,6 +152,10 @@ public class HevSocks5Tunnel {
                 Log.e(TAG, "Tunnel thread exception", e);
             } finally {
                 running = false;
+                ExitListener listener = exitListener;
+                if (listener != null) {
+                    listener.onTunnelExit(result);
+                }
             }
         }, "HevSocks5Tunnel");
         
@@ -102,22 +185,62 @@ public class HevSocks5Tunnel {
             throw new TunnelException("TUN file descriptor cannot be null");
         }
         
+        long start = System.nanoTime();
+        
         int fd = getFdFromFileDescriptor(tunFd);
         if (fd < 0) {
             throw new TunnelException("Invalid TUN file descriptor: " + fd);
         }
+        long fdNanos = System.nanoTime() - start;
+        
+        boolean warmStart = attachWarmState(config);
         
+        long configStart = System.nanoTime();
         String configYaml = config.toYaml();
-        Log.d(TAG, "Generated config YAML:\n" + configYaml);
+        long configNanos = System.nanoTime() - configStart;
+        
+        // Published before the thread starts: it may connect upstream at once
+        synchronized (timingsLock) {
+            startNanos = start;
+            startupTimings = new StartupTimings(libraryWaitMs, configNanos / 1_000_000,
+                    fdNanos / 1_000_000, -1, -1, warmStart);
+        }
+        // Only the first start of this instance waited for the library
+        libraryWaitMs = 0;
+        
+        synchronized (coreLock) {
+            cancelled = false;
+        }
+        upstreamAddress = config.getSocks5Address();
+        coreStartNanos = -1;
         
         running = true;
         final String finalConfigYaml = configYaml;
         final int finalFd = fd;
         
         tunnelThread = new Thread(() -> {
+            int result = -1;
             try {
                 Log.i(TAG, "Starting tunnel thread with inline config");
-                int result = nativeStartFromString(finalConfigYaml, finalFd);
+                String yaml = finalConfigYaml;
+                String upstream = raceUpstream(config);
+                if (upstream != null) {
+                    long yamlStart = System.nanoTime();
+                    yaml = config.toYaml(upstream);
+                    addConfigTime(System.nanoTime() - yamlStart);
+                    upstreamAddress = upstream;
+                }
+                // stop() during the race finds no core to stop; it must not
+                // start one afterwards
+                synchronized (coreLock) {
+                    if (cancelled) {
+                        Log.i(TAG, "Tunnel stopped before the core started");
+                        result = 0;
+                        return;
+                    }
+                    coreStartNanos = System.nanoTime();
+                }
+                result = nativeStartFromString(yaml, finalFd);
                 if (result != 0) {
                     Log.e(TAG, "Tunnel failed with error code: " + result);
                 } else {
@@ -127,6 +250,10 @@ public class HevSocks5Tunnel {
                 Log.e(TAG, "Tunnel thread exception", e);
             } finally {
                 running = false;
+                ExitListener listener = exitListener;
+                if (listener != null) {
+                    listener.onTunnelExit(result);
+                }
             }
         }, "HevSocks5Tunnel");
         
@@ -144,17 +271,33 @@ public class HevSocks5Tunnel {
     }
     
     public void stop() {
+        // Also when the core already exited on its own, so the flusher
+        // does not leak and pending records are written
+        WarmStateCache state = warmState;
+        if (state != null) {
+            state.stopFlushing();
+        }
+        
         if (!running) {
             Log.w(TAG, "Tunnel is not running");
             return;
         }
         
         Log.i(TAG, "Stopping tunnel");
-        nativeStop();
+        synchronized (coreLock) {
+            cancelled = true;
+        }
         
         if (tunnelThread != null) {
             try {
-                tunnelThread.join(5000);
+                // The thread may still be racing the upstream, or just
+                // entering the core; nativeStop() is a no-op until the core
+                // runs, so repeat it until the thread is gone
+                long deadline = System.nanoTime() + 5000 * 1_000_000L;
+                do {
+                    nativeStop();
+                    tunnelThread.join(100);
+                } while (tunnelThread.isAlive() && System.nanoTime() < deadline);
                 if (tunnelThread.isAlive()) {
                     Log.w(TAG, "Tunnel thread did not stop in time");
                     tunnelThread.interrupt();
@@ -169,6 +312,107 @@ public class HevSocks5Tunnel {
         Log.i(TAG, "Tunnel stopped");
     }
     
+    /**
+     * Open the config's warm state file, if any, restore it into the
+     * connect racer on first use and start persisting updates.
+     *
+     * @return {@code true} if state was restored for this start
+     */
+    private boolean attachWarmState(TunnelConfig config) {
+        File file = config.getWarmStateFile();
+        if (warmState != null && !warmState.getFile().equals(file)) {
+            warmState.stopFlushing();
+            happyEyeballs.setWarmState(null);
+            warmState = null;
+        }
+        if (file == null) {
+            return false;
+        }
+        
+        boolean restored = false;
+        if (warmState == null) {
+            warmState = WarmStateCache.open(file, config.getWarmStateMaxBytes());
+            int entries = warmState.applyTo(happyEyeballs);
+            happyEyeballs.setWarmState(warmState);
+            restored = entries > 0;
+            Log.d(TAG, "Restored " + entries + " warm state entries from " + file);
+        }
+        warmState.startFlushing(config.getWarmStateFlushIntervalMs());
+        return restored;
+    }
+    
+    /**
+     * Connect to the upstream hostname over both address families and
+     * return the winning literal address, so the native core skips its own
+     * resolution and uses the working family.
+     *
+     * @return The literal address, or {@code null} to use the configured one
+     */
+    private String raceUpstream(TunnelConfig config) {
+        String host = config.getSocks5Address();
+        SocketProtector protector = socketProtector;
+        // Unprotected sockets would be routed into the tunnel being started
+        if (protector == null || !config.isHappyEyeballsEnabled()
+                || HappyEyeballs.isLiteralAddress(host)) {
+            return null;
+        }
+        try {
+            Socket socket = happyEyeballs.connect(host, config.getSocks5Port(), config,
+                    protector, config.getUpstreamProbeTimeoutMs());
+            long connectedNanos = System.nanoTime();
+            String address = socket.getInetAddress().getHostAddress();
+            socket.close();
+            markUpstreamConnected(connectedNanos, -1);
+            Log.d(TAG, "Upstream " + host + " resolved to " + address);
+            return address;
+        } catch (IOException e) {
+            Log.w(TAG, "Upstream connect race failed for " + host + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Address the native core was started with: the literal address that
+     * won the connect race, or the configured one.
+     */
+    String getUpstreamAddress() {
+        return upstreamAddress;
+    }
+    
+    /**
+     * {@link System#nanoTime()} at which the last
+     * {@link #startAsync(TunnelConfig, FileDescriptor)} handed over to the
+     * native core, or {@code -1} while it is still racing the upstream.
+     */
+    long getCoreStartNanos() {
+        return coreStartNanos;
+    }
+    
+    /**
+     * Set the protector for sockets the library opens to the upstream
+     * (connect races and {@link TunnelSupervisor} probes). Pass
+     * {@code VpnService::protect}.
+     */
+    public void setSocketProtector(SocketProtector protector) {
+        this.socketProtector = protector;
+    }
+    
+    SocketProtector getSocketProtector() {
+        return socketProtector;
+    }
+    
+    HappyEyeballs getHappyEyeballs() {
+        return happyEyeballs;
+    }
+    
+    public ConnectRaceStats getConnectRaceStats() {
+        return happyEyeballs.getStats();
+    }
+    
+    void setExitListener(ExitListener listener) {
+        this.exitListener = listener;
+    }
+    
     public boolean isRunning() {
         return running;
     }
@@ -186,6 +430,51 @@ public class HevSocks5Tunnel {
         return new TunnelStats(stats[0], stats[1], stats[2], stats[3]);
     }
     
+    /**
+     * Get the startup phase durations of the last {@code startAsync} with a
+     * {@link TunnelConfig}.
+     *
+     * @return The timings, or {@code null} if not started that way
+     */
+    public StartupTimings getStartupTimings() {
+        return startupTimings;
+    }
+    
+    /**
+     * Record an upstream connect, and the first reply byte if known, when
+     * they are the first since the last start.
+     *
+     * @param connectedNanos When the TCP connect completed
+     * @param firstByteNanos When the first reply byte arrived, -1 if not read
+     */
+    void markUpstreamConnected(long connectedNanos, long firstByteNanos) {
+        synchronized (timingsLock) {
+            StartupTimings timings = startupTimings;
+            if (timings == null) {
+                return;
+            }
+            long connectMs = timings.getFirstUpstreamConnectMs();
+            long byteMs = timings.getFirstUpstreamByteMs();
+            if (connectMs < 0 && connectedNanos >= startNanos) {
+                connectMs = (connectedNanos - startNanos) / 1_000_000;
+            }
+            if (byteMs < 0 && firstByteNanos >= startNanos) {
+                byteMs = (firstByteNanos - startNanos) / 1_000_000;
+            }
+            startupTimings = timings.withFirstUpstream(connectMs, byteMs);
+        }
+    }
+    
+    private void addConfigTime(long nanos) {
+        synchronized (timingsLock) {
+            StartupTimings timings = startupTimings;
+            if (timings != null) {
+                startupTimings = timings.withConfigMs(
+                        timings.getConfigMs() + nanos / 1_000_000);
+            }
+        }
+    }
+    
     private native int getFdFromFileDescriptor(FileDescriptor fd);
     private native int nativeStart(String configPath, int tunFd);
     private native int nativeStartFromString(String configYaml, int tunFd);
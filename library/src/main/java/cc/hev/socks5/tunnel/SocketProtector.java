@@ -0,0 +1,11 @@
+package cc.hev.socks5.tunnel;
+
+import java.net.Socket;
+
+/**
+ * Excludes a socket from the VPN so it reaches the upstream directly.
+ * {@code VpnService::protect} satisfies this interface.
+ */
+public interface SocketProtector {
+    boolean protect(Socket socket);
+}
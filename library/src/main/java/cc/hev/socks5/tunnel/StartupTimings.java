@@ -0,0 +1,94 @@
+package cc.hev.socks5.tunnel;
+
+/**
+ * Duration of each tunnel startup phase in milliseconds, -1 if the phase
+ * was not measured.
+ */
+public class StartupTimings {
+    private final long libraryWaitMs;
+    private final long configMs;
+    private final long fdAttachMs;
+    private final long firstUpstreamConnectMs;
+    private final long firstUpstreamByteMs;
+    private final boolean warmStart;
+    
+    public StartupTimings(long libraryWaitMs, long configMs, long fdAttachMs,
+                          long firstUpstreamConnectMs, long firstUpstreamByteMs,
+                          boolean warmStart) {
+        this.libraryWaitMs = libraryWaitMs;
+        this.configMs = configMs;
+        this.fdAttachMs = fdAttachMs;
+        this.firstUpstreamConnectMs = firstUpstreamConnectMs;
+        this.firstUpstreamByteMs = firstUpstreamByteMs;
+        this.warmStart = warmStart;
+    }
+    
+    StartupTimings withFirstUpstream(long connectMs, long byteMs) {
+        return new StartupTimings(libraryWaitMs, configMs, fdAttachMs, connectMs, byteMs,
+                warmStart);
+    }
+    
+    StartupTimings withConfigMs(long ms) {
+        return new StartupTimings(libraryWaitMs, ms, fdAttachMs, firstUpstreamConnectMs,
+                firstUpstreamByteMs, warmStart);
+    }
+    
+    /**
+     * Time the tunnel constructor blocked waiting for the native library.
+     * Near 0 when {@link HevSocks5Tunnel#preloadAsync()} finished in time,
+     * and 0 for every start after the first on the same instance.
+     */
+    public long getLibraryWaitMs() {
+        return libraryWaitMs;
+    }
+    
+    /**
+     * Time to produce the serialized config, including rewriting it with
+     * the address that won the connect race.
+     */
+    public long getConfigMs() {
+        return configMs;
+    }
+    
+    /**
+     * Time to resolve the TUN descriptor for the native core.
+     */
+    public long getFdAttachMs() {
+        return fdAttachMs;
+    }
+    
+    /**
+     * Time from {@code startAsync} until the first TCP connect to the
+     * upstream, by the connect race or a {@link TunnelSupervisor} probe.
+     */
+    public long getFirstUpstreamConnectMs() {
+        return firstUpstreamConnectMs;
+    }
+    
+    /**
+     * Time from {@code startAsync} until the first SOCKS5 reply byte of a
+     * {@link TunnelSupervisor} probe arrived. Includes resolution and
+     * connect, so it is the figure a warm start is meant to shrink. -1
+     * without a supervisor.
+     */
+    public long getFirstUpstreamByteMs() {
+        return firstUpstreamByteMs;
+    }
+    
+    /**
+     * Whether state from a warm state file was restored for this start.
+     * Compare {@link #getFirstUpstreamByteMs()} of warm and cold starts to
+     * measure its effect.
+     */
+    public boolean isWarmStart() {
+        return warmStart;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("StartupTimings{library=%dms, config=%dms, fd=%dms, "
+                        + "upstream=%dms, firstByte=%dms%s}",
+                libraryWaitMs, configMs, fdAttachMs, firstUpstreamConnectMs,
+                firstUpstreamByteMs, warmStart ? " (warm)" : "");
+    }
+}
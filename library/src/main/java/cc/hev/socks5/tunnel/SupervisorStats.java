@@ -0,0 +1,57 @@
+package cc.hev.socks5.tunnel;
+
+/**
+ * Availability metrics for a {@link TunnelSupervisor}.
+ */
+public class SupervisorStats {
+    private final int reconnectCount;
+    private final long totalDowntimeMs;
+    private final long lastRecoveryMs;
+    private final long lastProbeRttMs;
+    private final boolean upstreamAvailable;
+    
+    public SupervisorStats(int reconnectCount, long totalDowntimeMs, long lastRecoveryMs,
+                           long lastProbeRttMs, boolean upstreamAvailable) {
+        this.reconnectCount = reconnectCount;
+        this.totalDowntimeMs = totalDowntimeMs;
+        this.lastRecoveryMs = lastRecoveryMs;
+        this.lastProbeRttMs = lastProbeRttMs;
+        this.upstreamAvailable = upstreamAvailable;
+    }
+    
+    public int getReconnectCount() {
+        return reconnectCount;
+    }
+    
+    /**
+     * Total time the upstream was considered down, including an ongoing outage.
+     */
+    public long getTotalDowntimeMs() {
+        return totalDowntimeMs;
+    }
+    
+    /**
+     * Duration of the most recent outage, from detection to restart.
+     */
+    public long getLastRecoveryMs() {
+        return lastRecoveryMs;
+    }
+    
+    /**
+     * Connect plus handshake time of the last successful probe, -1 if none.
+     */
+    public long getLastProbeRttMs() {
+        return lastProbeRttMs;
+    }
+    
+    public boolean isUpstreamAvailable() {
+        return upstreamAvailable;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("SupervisorStats{up=%b, reconnects=%d, downtime=%dms, "
+                        + "lastRecovery=%dms, rtt=%dms}",
+                upstreamAvailable, reconnectCount, totalDowntimeMs, lastRecoveryMs, lastProbeRttMs);
+    }
+}
@@ -3,7 +3,9 @@ package cc.hev.socks5.tunnel;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -23,6 +25,18 @@ public class TunnelConfig {
     private final String tunIPv6Gateway;
     private final List<String> dnsServers;
     private final int multiQueue;
+    private final long keepaliveIntervalMs;
+    private final int keepaliveFailureThreshold;
+    private final int upstreamProbeTimeoutMs;
+    private final long reconnectInitialDelayMs;
+    private final long reconnectMaxDelayMs;
+    private final int maxSessions;
+    private final boolean happyEyeballsEnabled;
+    private final long connectionAttemptDelayMs;
+    private final File warmStateFile;
+    private final long warmStateFlushIntervalMs;
+    private final long warmStateMaxBytes;
+    private volatile String yaml;
     
     private TunnelConfig(Builder builder) {
         this.socks5Address = builder.socks5Address;
@@ -35,14 +49,99 @@ public class TunnelConfig {
         this.tunIPv4Gateway = builder.tunIPv4Gateway;
         this.tunIPv6Address = builder.tunIPv6Address;
         this.tunIPv6Gateway = builder.tunIPv6Gateway;
-        this.dnsServers = builder.dnsServers;
+        // Copied so later Builder changes cannot alter the memoized YAML
+        this.dnsServers = Collections.unmodifiableList(new ArrayList<>(builder.dnsServers));
         this.multiQueue = builder.multiQueue;
+        this.keepaliveIntervalMs = builder.keepaliveIntervalMs;
+        this.keepaliveFailureThreshold = builder.keepaliveFailureThreshold;
+        this.upstreamProbeTimeoutMs = builder.upstreamProbeTimeoutMs;
+        this.reconnectInitialDelayMs = builder.reconnectInitialDelayMs;
+        this.reconnectMaxDelayMs = builder.reconnectMaxDelayMs;
+        this.maxSessions = builder.maxSessions;
+        this.happyEyeballsEnabled = builder.happyEyeballsEnabled;
+        this.connectionAttemptDelayMs = builder.connectionAttemptDelayMs;
+        this.warmStateFile = builder.warmStateFile;
+        this.warmStateFlushIntervalMs = builder.warmStateFlushIntervalMs;
+        this.warmStateMaxBytes = builder.warmStateMaxBytes;
+    }
+    
+    String getSocks5Address() {
+        return socks5Address;
+    }
+    
+    int getSocks5Port() {
+        return socks5Port;
+    }
+    
+    String getSocks5Username() {
+        return socks5Username;
+    }
+    
+    String getSocks5Password() {
+        return socks5Password;
+    }
+    
+    long getKeepaliveIntervalMs() {
+        return keepaliveIntervalMs;
+    }
+    
+    int getKeepaliveFailureThreshold() {
+        return keepaliveFailureThreshold;
+    }
+    
+    int getUpstreamProbeTimeoutMs() {
+        return upstreamProbeTimeoutMs;
+    }
+    
+    long getReconnectInitialDelayMs() {
+        return reconnectInitialDelayMs;
+    }
+    
+    long getReconnectMaxDelayMs() {
+        return reconnectMaxDelayMs;
+    }
+    
+    boolean isHappyEyeballsEnabled() {
+        return happyEyeballsEnabled;
+    }
+    
+    long getConnectionAttemptDelayMs() {
+        return connectionAttemptDelayMs;
+    }
+    
+    File getWarmStateFile() {
+        return warmStateFile;
+    }
+    
+    long getWarmStateFlushIntervalMs() {
+        return warmStateFlushIntervalMs;
+    }
+    
+    long getWarmStateMaxBytes() {
+        return warmStateMaxBytes;
     }
     
     /**
      * Convert configuration to YAML format for hev-socks5-tunnel
      */
     public String toYaml() {
+        String cached = yaml;
+        if (cached == null) {
+            cached = buildYaml(socks5Address);
+            yaml = cached;
+        }
+        return cached;
+    }
+    
+    /**
+     * Generate YAML with the SOCKS5 address replaced, e.g. by the literal
+     * address that won the connect race. Not cached.
+     */
+    String toYaml(String socks5AddressOverride) {
+        return buildYaml(socks5AddressOverride);
+    }
+    
+    private String buildYaml(String socks5Address) {
         StringBuilder yaml = new StringBuilder();
         
         // Main tunnel section
@@ -80,9 +179,17 @@ public class TunnelConfig {
             yaml.append("  password: ").append(socks5Password).append("\n");
         }
         
-        // DNS section
-        if (dnsServers != null && !dnsServers.isEmpty()) {
+        // Misc section
+        boolean hasDns = dnsServers != null && !dnsServers.isEmpty();
+        if (hasDns || maxSessions > 0) {
             yaml.append("misc:\n");
+        }
+        
+        if (maxSessions > 0) {
+            yaml.append("  max-session-count: ").append(maxSessions).append("\n");
+        }
+        
+        if (hasDns) {
             yaml.append("  dns:\n");
             for (String dns : dnsServers) {
                 yaml.append("    - ").append(dns).append("\n");
@@ -105,6 +212,17 @@ public class TunnelConfig {
         private String tunIPv6Gateway = "fc00::1";
         private List<String> dnsServers = new ArrayList<>();
         private int multiQueue = 4;
+        private long keepaliveIntervalMs = 15000;
+        private int keepaliveFailureThreshold = 2;
+        private int upstreamProbeTimeoutMs = 2000;
+        private long reconnectInitialDelayMs = 250;
+        private long reconnectMaxDelayMs = 30000;
+        private int maxSessions = 0;
+        private boolean happyEyeballsEnabled = true;
+        private long connectionAttemptDelayMs = 250;
+        private File warmStateFile;
+        private long warmStateFlushIntervalMs = 30000;
+        private long warmStateMaxBytes = 64 * 1024;
         
         public Builder() {
             // Default DNS servers
@@ -186,6 +304,109 @@ public class TunnelConfig {
             return this;
         }
         
+        /**
+         * Set how often {@link TunnelSupervisor} probes the upstream, and how
+         * many consecutive probe timeouts count as an outage. Handshake
+         * errors count as an outage immediately. Each probe opens a new
+         * upstream connection, but only while the tunnel carries traffic;
+         * short intervals cost battery on cellular networks.
+         */
+        public Builder setKeepalive(long intervalMs, int failureThreshold) {
+            if (intervalMs <= 0) {
+                throw new IllegalArgumentException("Invalid keepalive interval: " + intervalMs);
+            }
+            if (failureThreshold <= 0) {
+                throw new IllegalArgumentException(
+                        "Invalid failure threshold: " + failureThreshold);
+            }
+            this.keepaliveIntervalMs = intervalMs;
+            this.keepaliveFailureThreshold = failureThreshold;
+            return this;
+        }
+        
+        public Builder setUpstreamProbeTimeout(int timeoutMs) {
+            if (timeoutMs <= 0) {
+                throw new IllegalArgumentException("Invalid probe timeout: " + timeoutMs);
+            }
+            this.upstreamProbeTimeoutMs = timeoutMs;
+            return this;
+        }
+        
+        /**
+         * Set the reconnect backoff range. The delay doubles per failed
+         * attempt from {@code initialMs} up to {@code maxMs}, with jitter.
+         */
+        public Builder setReconnectBackoff(long initialMs, long maxMs) {
+            if (initialMs <= 0 || maxMs < initialMs) {
+                throw new IllegalArgumentException("Invalid reconnect backoff: "
+                        + initialMs + ".." + maxMs);
+            }
+            this.reconnectInitialDelayMs = initialMs;
+            this.reconnectMaxDelayMs = maxMs;
+            return this;
+        }
+        
+        /**
+         * Set {@code misc.max-session-count} of the native core. This is not
+         * admission control: when a new TCP or UDP session would exceed the
+         * limit, the core accepts it and terminates the least recently
+         * active session instead. 0 means unlimited.
+         */
+        public Builder setMaxSessions(int sessions) {
+            if (sessions < 0) {
+                throw new IllegalArgumentException("Invalid max sessions: " + sessions);
+            }
+            this.maxSessions = sessions;
+            return this;
+        }
+        
+        /**
+         * Race IPv6 and IPv4 connects when the SOCKS5 address is a hostname
+         * with addresses in both families (RFC 8305).
+         */
+        public Builder setHappyEyeballs(boolean enabled) {
+            this.happyEyeballsEnabled = enabled;
+            return this;
+        }
+        
+        /**
+         * Set the stagger between connect attempts in a race (RFC 8305
+         * "Connection Attempt Delay", 10-2000 ms). Once the connect time to
+         * the upstream is known, twice that time is used if it is shorter.
+         */
+        public Builder setConnectionAttemptDelay(long delayMs) {
+            if (delayMs < 10 || delayMs > 2000) {
+                throw new IllegalArgumentException("Invalid connection attempt delay: " + delayMs);
+            }
+            this.connectionAttemptDelayMs = delayMs;
+            return this;
+        }
+        
+        /**
+         * Persist upstream latency, winning address families and DNS answers
+         * to {@code file} so the next start begins warm. {@code null} disables.
+         */
+        public Builder setWarmStateFile(@Nullable File file) {
+            this.warmStateFile = file;
+            return this;
+        }
+        
+        /**
+         * Set how often learned state is appended to the warm state file and
+         * the size at which the file is compacted.
+         */
+        public Builder setWarmStateLimits(long flushIntervalMs, long maxBytes) {
+            if (flushIntervalMs <= 0) {
+                throw new IllegalArgumentException("Invalid flush interval: " + flushIntervalMs);
+            }
+            if (maxBytes < 4096) {
+                throw new IllegalArgumentException("Invalid warm state size: " + maxBytes);
+            }
+            this.warmStateFlushIntervalMs = flushIntervalMs;
+            this.warmStateMaxBytes = maxBytes;
+            return this;
+        }
+        
         public TunnelConfig build() {
             if (socks5Address == null || socks5Address.isEmpty()) {
                 throw new IllegalStateException("SOCKS5 address is required");
@@ -0,0 +1,346 @@
+package cc.hev.socks5.tunnel;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keeps a {@link HevSocks5Tunnel} running across upstream failures.
+ *
+ * <p>The supervisor probes the SOCKS5 upstream every keepalive interval
+ * while the tunnel carries traffic, and watches the native tunnel thread.
+ * An idle tunnel is not probed, so the supervisor does not keep a cellular
+ * radio awake on its own; a stall shows up as soon as apps send again.
+ * When the tunnel exits, the
+ * upstream refuses the connection or rejects the handshake, or enough
+ * consecutive probes time out, the tunnel is stopped and restarted on the
+ * same TUN descriptor with jittered exponential backoff. The VPN
+ * interface and its routes are never torn down, so apps only see stalled
+ * connections rather than a network change.
+ *
+ * <p>A restart only counts as a reconnect once the native core has stayed
+ * up for {@link #STABLE_WINDOW_MS}. Until then the backoff keeps growing, so
+ * a core that keeps exiting shortly after start is retried less and less
+ * often instead of in a tight loop.
+ */
+public class TunnelSupervisor {
+    private static final String TAG = "TunnelSupervisor";
+    private static final long STABLE_WINDOW_MS = 10000;
+    
+    /**
+     * Callbacks invoked on the supervisor thread.
+     */
+    public interface Listener {
+        void onUpstreamLost(@NonNull String reason);
+        
+        void onReconnected(long downtimeMs, int attempts);
+    }
+    
+    private final HevSocks5Tunnel tunnel;
+    private final TunnelConfig config;
+    private final FileDescriptor tunFd;
+    private final Object lock = new Object();
+    
+    private volatile Listener listener;
+    private volatile boolean stopped = true;
+    private boolean exited = false;
+    private Thread supervisorThread;
+    
+    private int reconnectCount;
+    private long totalDowntimeMs;
+    private long lastRecoveryMs;
+    private long lastProbeRttMs = -1;
+    private long downSince = -1;
+    private boolean restartPending = false;
+    private int attempts;
+    
+    public TunnelSupervisor(@NonNull HevSocks5Tunnel tunnel, @NonNull TunnelConfig config,
+                            @NonNull FileDescriptor tunFd) {
+        this.tunnel = tunnel;
+        this.config = config;
+        this.tunFd = tunFd;
+    }
+    
+    /**
+     * Set the protector used for probe sockets. Required when the VPN
+     * routes the upstream address, otherwise probes loop through the tunnel.
+     * Equivalent to {@link HevSocks5Tunnel#setSocketProtector}.
+     */
+    public void setSocketProtector(@Nullable SocketProtector protector) {
+        tunnel.setSocketProtector(protector);
+    }
+    
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+    
+    /**
+     * Start the tunnel and begin supervising it.
+     *
+     * @throws TunnelException If already started or the first start fails
+     */
+    public void start() throws TunnelException {
+        synchronized (lock) {
+            if (!stopped) {
+                throw new TunnelException("Supervisor is already running");
+            }
+            tunnel.setExitListener(this::onTunnelExit);
+            exited = false;
+            tunnel.startAsync(config, tunFd);
+            stopped = false;
+        }
+        
+        supervisorThread = new Thread(this::supervise, "HevSocks5TunnelSupervisor");
+        supervisorThread.start();
+    }
+    
+    /**
+     * Stop supervising and stop the tunnel. The TUN descriptor is left open.
+     */
+    public void stop() {
+        synchronized (lock) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            lock.notifyAll();
+        }
+        
+        if (supervisorThread != null) {
+            supervisorThread.interrupt();
+            try {
+                supervisorThread.join(5000);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while waiting for supervisor thread", e);
+            }
+            supervisorThread = null;
+        }
+        
+        tunnel.setExitListener(null);
+        // Even if the core is down, so the tunnel stops its warm state writer
+        tunnel.stop();
+    }
+    
+    public boolean isRunning() {
+        return !stopped;
+    }
+    
+    public SupervisorStats getStats() {
+        synchronized (lock) {
+            long downtime = totalDowntimeMs;
+            long coreStart = restartPending ? tunnel.getCoreStartNanos() : -1;
+            if (coreStart >= 0) {
+                downtime += (coreStart - downSince) / 1_000_000;
+            } else if (downSince >= 0) {
+                downtime += elapsedMs(downSince);
+            }
+            return new SupervisorStats(reconnectCount, downtime, lastRecoveryMs,
+                    lastProbeRttMs, downSince < 0 || coreStart >= 0);
+        }
+    }
+    
+    private void onTunnelExit(int result) {
+        synchronized (lock) {
+            exited = true;
+            lock.notifyAll();
+        }
+    }
+    
+    private void supervise() {
+        UpstreamProbe probe = new UpstreamProbe(config, tunnel.getSocketProtector(),
+                tunnel.getHappyEyeballs());
+        int timeouts = 0;
+        long lastPackets = -1;
+        // Probe right away to measure the first upstream connect
+        boolean probeNow = true;
+        
+        while (!stopped) {
+            String reason = null;
+            
+            if (!await(probeNow ? 0 : config.getKeepaliveIntervalMs(), true)) {
+                break;
+            }
+            
+            boolean pending;
+            synchronized (lock) {
+                if (exited) {
+                    reason = "tunnel exited";
+                }
+                pending = restartPending;
+            }
+            
+            if (reason == null) {
+                long packets = packetCount();
+                boolean idle = packets == lastPackets;
+                lastPackets = packets;
+                // Nothing to stall and nothing to confirm: a probe would
+                // only wake the radio
+                if (idle && !probeNow && !pending) {
+                    continue;
+                }
+                probeNow = false;
+                try {
+                    // Probe the address the core uses, so a failure of the
+                    // family it was pinned to is not masked by the other
+                    long rtt = probe.probe(tunnel.getUpstreamAddress());
+                    synchronized (lock) {
+                        lastProbeRttMs = rtt;
+                    }
+                    tunnel.markUpstreamConnected(probe.getConnectedNanos(),
+                            probe.getFirstByteNanos());
+                    timeouts = 0;
+                    confirmIfStable();
+                } catch (UpstreamProbe.HandshakeException | ConnectException e) {
+                    // Refused or rejected: no point waiting for more probes
+                    reason = "handshake failed: " + e.getMessage();
+                } catch (IOException e) {
+                    if (++timeouts >= config.getKeepaliveFailureThreshold()) {
+                        reason = "keepalive failed: " + e.getMessage();
+                    }
+                }
+            }
+            
+            if (reason != null) {
+                timeouts = 0;
+                recover(probe, reason);
+                // Measure the first upstream connect of the restarted tunnel
+                probeNow = true;
+            }
+        }
+        Log.i(TAG, "Supervisor stopped");
+    }
+    
+    private void recover(UpstreamProbe probe, String reason) {
+        Log.w(TAG, "Upstream lost (" + reason + "), reconnecting");
+        boolean newOutage;
+        synchronized (lock) {
+            // A failure inside the stability window continues the outage
+            newOutage = downSince < 0;
+            if (newOutage) {
+                downSince = System.nanoTime();
+            }
+            restartPending = false;
+        }
+        Listener l = listener;
+        if (newOutage && l != null) {
+            l.onUpstreamLost(reason);
+        }
+        
+        if (tunnel.isRunning()) {
+            tunnel.stop();
+        }
+        
+        while (!stopped) {
+            if (!await(backoffDelayMs(attempts++), false)) {
+                return;
+            }
+            
+            try {
+                long rtt = probe.probe();
+                synchronized (lock) {
+                    if (stopped) {
+                        return;
+                    }
+                    lastProbeRttMs = rtt;
+                    exited = false;
+                }
+                // Outside the lock: starting takes a while and getStats()
+                // or stop() must not wait for it. A stop() meanwhile stops
+                // the new core once this thread has returned.
+                tunnel.startAsync(config, tunFd);
+                synchronized (lock) {
+                    if (stopped) {
+                        return;
+                    }
+                    restartPending = true;
+                }
+            } catch (IOException | TunnelException e) {
+                Log.d(TAG, "Reconnect attempt " + attempts + " failed: " + e.getMessage());
+                continue;
+            }
+            
+            Log.d(TAG, "Restarted after " + attempts + " attempts, waiting for it to settle");
+            return;
+        }
+    }
+    
+    /**
+     * Count the last restart as a reconnect once the native core has stayed
+     * up for the stability window, and reset the backoff. The window starts
+     * when the core starts, not when the restart began racing the upstream.
+     */
+    private void confirmIfStable() {
+        long downtime;
+        int used;
+        synchronized (lock) {
+            long coreStart = tunnel.getCoreStartNanos();
+            if (!restartPending || coreStart < 0 || elapsedMs(coreStart) < STABLE_WINDOW_MS) {
+                return;
+            }
+            downtime = (coreStart - downSince) / 1_000_000;
+            used = attempts;
+            downSince = -1;
+            restartPending = false;
+            attempts = 0;
+            reconnectCount++;
+            totalDowntimeMs += downtime;
+            lastRecoveryMs = downtime;
+        }
+        Log.i(TAG, "Reconnected after " + downtime + "ms, " + used + " attempts");
+        Listener l = listener;
+        if (l != null) {
+            l.onReconnected(downtime, used);
+        }
+    }
+    
+    /**
+     * Exponential backoff capped at the configured maximum, with the upper
+     * half randomized so many clients do not retry in lockstep.
+     */
+    private long backoffDelayMs(int attempt) {
+        long initial = config.getReconnectInitialDelayMs();
+        long max = config.getReconnectMaxDelayMs();
+        long cap = attempt >= 30 ? max : Math.min(max, initial << attempt);
+        long half = cap / 2;
+        return half + ThreadLocalRandom.current().nextLong(cap - half + 1);
+    }
+    
+    /**
+     * Wait up to {@code ms}, returning early if the tunnel exits and
+     * {@code wakeOnExit} is set.
+     *
+     * @return {@code false} if the supervisor was stopped
+     */
+    private boolean await(long ms, boolean wakeOnExit) {
+        long deadline = System.nanoTime() + ms * 1_000_000;
+        synchronized (lock) {
+            while (!stopped && !(wakeOnExit && exited)) {
+                long left = (deadline - System.nanoTime()) / 1_000_000;
+                if (left <= 0) {
+                    break;
+                }
+                try {
+                    lock.wait(left);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return !stopped;
+        }
+    }
+    
+    private long packetCount() {
+        TunnelStats stats = tunnel.getStats();
+        return stats.getTxPackets() + stats.getRxPackets();
+    }
+    
+    private static long elapsedMs(long since) {
+        return (System.nanoTime() - since) / 1_000_000;
+    }
+}
@@ -0,0 +1,147 @@
+package cc.hev.socks5.tunnel;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * Checks that the SOCKS5 upstream accepts connections and completes the
+ * method negotiation (and username/password authentication, if configured).
+ * Not thread-safe; each thread probing the upstream uses its own instance.
+ */
+final class UpstreamProbe {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    /**
+     * Thrown when the upstream answered but violated or refused the SOCKS5
+     * handshake, as opposed to being unreachable or slow.
+     */
+    static final class HandshakeException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        HandshakeException(String message) {
+            super(message);
+        }
+    }
+    
+    private final TunnelConfig config;
+    private final String username;
+    private final String password;
+    private final int timeoutMs;
+    private final SocketProtector protector;
+    private final HappyEyeballs connector;
+    private long connectedNanos;
+    private long firstByteNanos;
+    
+    UpstreamProbe(TunnelConfig config, @Nullable SocketProtector protector,
+                  HappyEyeballs connector) {
+        this.config = config;
+        this.username = config.getSocks5Username();
+        this.password = config.getSocks5Password();
+        this.timeoutMs = config.getUpstreamProbeTimeoutMs();
+        this.protector = protector;
+        this.connector = connector;
+    }
+    
+    /**
+     * Connect and handshake with the configured upstream, racing its
+     * addresses.
+     *
+     * @return Milliseconds from connect start to handshake completion
+     */
+    long probe() throws IOException {
+        return probe(config.getSocks5Address());
+    }
+    
+    /**
+     * Connect and handshake with the upstream at {@code host}, e.g. the
+     * literal address the running core was pinned to.
+     *
+     * @return Milliseconds from connect start to handshake completion
+     */
+    long probe(String host) throws IOException {
+        long start = System.nanoTime();
+        Socket socket = connector.connect(host, config.getSocks5Port(), config, protector,
+                timeoutMs);
+        connectedNanos = System.nanoTime();
+        try {
+            socket.setSoTimeout(timeoutMs);
+            socket.setTcpNoDelay(true);
+            handshake(socket.getInputStream(), socket.getOutputStream());
+        } finally {
+            socket.close();
+        }
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+    
+    /**
+     * {@link System#nanoTime()} at which the last successful probe's TCP
+     * connect completed.
+     */
+    long getConnectedNanos() {
+        return connectedNanos;
+    }
+    
+    /**
+     * {@link System#nanoTime()} at which the last successful probe received
+     * the first byte from the upstream.
+     */
+    long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+    
+    private void handshake(InputStream in, OutputStream out) throws IOException {
+        boolean auth = username != null && !username.isEmpty();
+        out.write(new byte[] {0x05, 0x01, (byte) (auth ? 0x02 : 0x00)});
+        out.flush();
+        
+        int version = in.read();
+        firstByteNanos = System.nanoTime();
+        if (version < 0) {
+            throw new HandshakeException("Upstream closed connection during handshake");
+        }
+        if (version != 0x05) {
+            throw new HandshakeException("Not a SOCKS5 server, version " + version);
+        }
+        byte[] reply = readFully(in, 1);
+        if ((reply[0] & 0xff) == 0xff) {
+            throw new HandshakeException("No acceptable authentication method");
+        }
+        if (!auth) {
+            return;
+        }
+        
+        byte[] user = username.getBytes(UTF_8);
+        byte[] pass = password != null ? password.getBytes(UTF_8) : new byte[0];
+        byte[] req = new byte[3 + user.length + pass.length];
+        req[0] = 0x01;
+        req[1] = (byte) user.length;
+        System.arraycopy(user, 0, req, 2, user.length);
+        req[2 + user.length] = (byte) pass.length;
+        System.arraycopy(pass, 0, req, 3 + user.length, pass.length);
+        out.write(req);
+        out.flush();
+        
+        byte[] status = readFully(in, 2);
+        if (status[1] != 0x00) {
+            throw new HandshakeException("Authentication rejected, status " + status[1]);
+        }
+    }
+    
+    private static byte[] readFully(InputStream in, int n) throws IOException {
+        byte[] buf = new byte[n];
+        int got = 0;
+        while (got < n) {
+            int r = in.read(buf, got, n - got);
+            if (r < 0) {
+                throw new HandshakeException("Upstream closed connection during handshake");
+            }
+            got += r;
+        }
+        return buf;
+    }
+}
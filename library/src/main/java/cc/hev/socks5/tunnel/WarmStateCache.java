@@ -0,0 +1,353 @@
+package cc.hev.socks5.tunnel;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of what the tunnel learned about the network, so a restart
+ * does not begin cold: upstream connect latency estimates, the winning
+ * address family per upstream, and recent DNS answers with their expiry.
+ *
+ * <p>The file is an append-only log: a header with magic and version,
+ * then length-prefixed, CRC-checked records where later records replace
+ * earlier ones for the same key. Updates are buffered in memory and
+ * appended by a background thread every flush interval. When the file
+ * grows past its size limit it is rewritten as a compact snapshot. A file
+ * with another version, or the unreadable tail of a torn write, is
+ * ignored, and the next flush rewrites the file instead of appending
+ * after the bad bytes where no later load would find the new records.
+ */
+final class WarmStateCache {
+    private static final String TAG = "HevSocks5Tunnel";
+    private static final int MAGIC = 0x48535457;
+    static final int VERSION = 1;
+    private static final int MAX_ENTRIES = 256;
+    private static final int MAX_RECORD_BYTES = 4096;
+    
+    private static final byte TYPE_LATENCY = 1;
+    private static final byte TYPE_ROUTE = 2;
+    private static final byte TYPE_DNS = 3;
+    
+    private final File file;
+    private final long maxBytes;
+    private final Map<String, byte[]> records = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final List<byte[]> pending = new ArrayList<>();
+    private ScheduledExecutorService flusher;
+    private boolean needsSnapshot;
+    
+    private WarmStateCache(File file, long maxBytes) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+    }
+    
+    /**
+     * Open the cache, loading any existing state.
+     */
+    static WarmStateCache open(File file, long maxBytes) {
+        WarmStateCache cache = new WarmStateCache(file, maxBytes);
+        cache.load();
+        return cache;
+    }
+    
+    File getFile() {
+        return file;
+    }
+    
+    /**
+     * Seed {@code target} with every unexpired entry.
+     *
+     * @return Number of entries restored
+     */
+    int applyTo(HappyEyeballs target) {
+        List<byte[]> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(records.values());
+        }
+        long now = System.currentTimeMillis();
+        int restored = 0;
+        for (byte[] record : snapshot) {
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+                byte type = in.readByte();
+                String host = in.readUTF();
+                if (type == TYPE_LATENCY) {
+                    target.restoreLatency(host, in.readLong());
+                    restored++;
+                } else if (type == TYPE_ROUTE) {
+                    boolean ipv6 = in.readBoolean();
+                    long expiresAt = in.readLong();
+                    if (expiresAt > now) {
+                        target.restoreRoute(host, ipv6, expiresAt);
+                        restored++;
+                    }
+                } else if (type == TYPE_DNS) {
+                    InetAddress[] addresses = new InetAddress[in.readUnsignedByte()];
+                    for (int i = 0; i < addresses.length; i++) {
+                        byte[] addr = new byte[in.readUnsignedByte()];
+                        in.readFully(addr);
+                        addresses[i] = InetAddress.getByAddress(host, addr);
+                    }
+                    long expiresAt = in.readLong();
+                    if (expiresAt > now && addresses.length > 0) {
+                        target.restoreDns(host, addresses, expiresAt);
+                        restored++;
+                    }
+                }
+            } catch (IOException e) {
+                // Validated by CRC on load; skip anything still malformed
+            }
+        }
+        return restored;
+    }
+    
+    void putLatency(String host, long estimateMs) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        try {
+            out.writeByte(TYPE_LATENCY);
+            out.writeUTF(host);
+            out.writeLong(estimateMs);
+        } catch (IOException e) {
+            return;
+        }
+        put(TYPE_LATENCY, host, buf.toByteArray());
+    }
+    
+    void putRoute(String host, boolean ipv6, long expiresAt) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        try {
+            out.writeByte(TYPE_ROUTE);
+            out.writeUTF(host);
+            out.writeBoolean(ipv6);
+            out.writeLong(expiresAt);
+        } catch (IOException e) {
+            return;
+        }
+        put(TYPE_ROUTE, host, buf.toByteArray());
+    }
+    
+    /**
+     * Store a DNS answer. An empty answer with expiry 0 erases the entry.
+     */
+    void putDns(String host, InetAddress[] addresses, long expiresAt) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        try {
+            out.writeByte(TYPE_DNS);
+            out.writeUTF(host);
+            int n = Math.min(addresses.length, 16);
+            out.writeByte(n);
+            for (int i = 0; i < n; i++) {
+                byte[] addr = addresses[i].getAddress();
+                out.writeByte(addr.length);
+                out.write(addr);
+            }
+            out.writeLong(expiresAt);
+        } catch (IOException e) {
+            return;
+        }
+        put(TYPE_DNS, host, buf.toByteArray());
+    }
+    
+    private synchronized void put(byte type, String host, byte[] record) {
+        if (record.length > MAX_RECORD_BYTES) {
+            return;
+        }
+        records.put(type + ":" + host, record);
+        pending.add(record);
+    }
+    
+    /**
+     * Start appending pending updates every {@code intervalMs}.
+     */
+    synchronized void startFlushing(long intervalMs) {
+        if (flusher != null) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "HevSocks5TunnelWarmState");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, intervalMs, intervalMs,
+                TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Stop the background writer and write what is still pending.
+     */
+    void stopFlushing() {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = flusher;
+            flusher = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+    
+    /**
+     * Append pending records, compacting the file if it grew too large.
+     */
+    synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            if (needsSnapshot || !file.exists() || file.length() + pendingBytes() > maxBytes) {
+                writeSnapshot();
+                needsSnapshot = false;
+            } else {
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(file, true));
+                try {
+                    DataOutputStream data = new DataOutputStream(out);
+                    for (byte[] record : pending) {
+                        writeRecord(data, record);
+                    }
+                    data.flush();
+                } finally {
+                    out.close();
+                }
+            }
+            pending.clear();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write warm state " + file, e);
+        }
+    }
+    
+    private long pendingBytes() {
+        long total = 0;
+        for (byte[] record : pending) {
+            total += record.length + 8;
+        }
+        return total;
+    }
+    
+    private void writeSnapshot() throws IOException {
+        // Drop least recently updated entries until the snapshot leaves
+        // room for appends
+        long total = 8;
+        for (byte[] record : records.values()) {
+            total += record.length + 8;
+        }
+        Iterator<byte[]> eldest = records.values().iterator();
+        while (total > maxBytes / 2 && eldest.hasNext()) {
+            total -= eldest.next().length + 8;
+            eldest.remove();
+        }
+        
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (byte[] record : records.values()) {
+                writeRecord(out, record);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp);
+        }
+    }
+    
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeInt((int) crc.getValue());
+    }
+    
+    private synchronized void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        long size = file.length();
+        long valid = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.i(TAG, "Ignoring warm state with unknown format: " + file);
+                return;
+            }
+            valid = 8;
+            while (valid < size) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                CRC32 crc = new CRC32();
+                crc.update(record, 0, length);
+                if (in.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+                DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+                byte type = fields.readByte();
+                records.put(type + ":" + fields.readUTF(), record);
+                valid += length + 8;
+            }
+        } catch (EOFException e) {
+            // Torn tail from an interrupted append
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read warm state " + file, e);
+        } finally {
+            // Appending after unreadable bytes would hide every new record
+            needsSnapshot = valid < size;
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}